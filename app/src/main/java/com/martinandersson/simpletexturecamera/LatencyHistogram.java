@@ -0,0 +1,44 @@
+package com.martinandersson.simpletexturecamera;
+
+/**
+ * Histogram of latencies in milliseconds.
+ */
+public class LatencyHistogram {
+    private final long[] mBucketsMs;
+    private final int[] mCounts;
+    private int mSamples;
+    private long mTotalMs;
+    private long mMaxMs;
+
+    /**
+     * @param bucketsMs upper bounds (ms) for the buckets in increasing order, the last bucket catches everything slower.
+     */
+    public LatencyHistogram(long... bucketsMs) {
+        mBucketsMs = bucketsMs;
+        mCounts = new int[bucketsMs.length + 1];
+    }
+
+    public synchronized void record(long millis) {
+        int bucket = 0;
+        while (bucket < mBucketsMs.length && millis >= mBucketsMs[bucket]) {
+            bucket++;
+        }
+        mCounts[bucket]++;
+        mSamples++;
+        mTotalMs += millis;
+        mMaxMs = Math.max(mMaxMs, millis);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("n=").append(mSamples)
+                .append(" avg=").append(mSamples > 0 ? mTotalMs / mSamples : 0).append("ms")
+                .append(" max=").append(mMaxMs).append("ms");
+        for (int i = 0; i < mCounts.length; i++) {
+            sb.append(' ').append(i < mBucketsMs.length ? "<" + mBucketsMs[i] : ">=" + mBucketsMs[mBucketsMs.length - 1])
+                    .append("ms=").append(mCounts[i]);
+        }
+        return sb.toString();
+    }
+}
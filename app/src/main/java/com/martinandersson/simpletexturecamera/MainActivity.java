@@ -1,26 +1,32 @@
 package com.martinandersson.simpletexturecamera;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.content.Intent;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
+import android.hardware.display.DisplayManager;
 import android.hardware.Camera;
 import android.media.CamcorderProfile;
 import android.media.MediaRecorder;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
-import android.view.Display;
+import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
-import android.view.Surface;
 import android.view.TextureView;
 import android.view.View;
 import android.widget.ImageView;
@@ -28,14 +34,16 @@ import android.widget.ProgressBar;
 import android.widget.RelativeLayout;
 import android.widget.Toast;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import butterknife.Bind;
 import butterknife.ButterKnife;
@@ -45,13 +53,28 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
     public static final String TAG = MainActivity.class.getSimpleName();
 
     public static final int VIDEO_ENCODING_BIT_RATE = 4000000; // This affects the video size
+    public static final int FSYNC_POLICY = MediaStorage.FSYNC_ON_CLOSE; // FSYNC_NEVER is faster but a crash right after saving may lose the picture
     public static final float MAX_ZOOM_GESTURE_SIZE = 2.5f; // This affects the pinch to zoom gesture
+    public static final long MIN_RECORDING_SECONDS = 10; // Don't start recording if there is less storage left than this
+    public static final long FOCUS_TIMEOUT_MS = 1500; // Take the picture anyway if focus hasn't locked by then
+    public static final long FOCUS_LOCK_EXPIRY_MS = 3000; // Tap to focus is considered stale after this, the user has probably reframed
+    public static final int FOCUS_AREA_SIZE = 200; // Size of the tap to focus area, the camera uses -1000 to 1000 for the whole preview
 
     public static final int MEDIA_TYPE_IMAGE = 1;
     public static final int MEDIA_TYPE_VIDEO = 2;
     public static final int FLASH_OFF = 1;
     public static final int FLASH_ON = 2;
     public static final int FLASH_AUTO = 3;
+    public static final int CAPTURE_STATE_PREVIEW = 1;
+    public static final int CAPTURE_STATE_WAITING_FOCUS = 2;
+    public static final int CAPTURE_STATE_CAPTURING = 3;
+
+    // Tap to shutter latency per focus mode, kept static since the Activity finishes after every picture
+    private static final Map<String, LatencyHistogram> sShutterLagHistograms = new HashMap<String, LatencyHistogram>();
+
+    // Used to measure how long the preview is frozen by a rotation or camera restart, static to survive Activity recreation
+    private static long sPreviewInterruptedTime;
+    private static String sPreviewInterruptedReason;
 
     private int mCameraId;
     private MediaRecorder mMediaRecorder;
@@ -68,6 +91,25 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
     private int mSurfaceTextureHeight;
     private float mSavedScaleFactor = 1.0f;
     private int mMaxZoom;
+    private MediaStorage mMediaStorage;
+    private PreviewTransform mPreviewTransform = new PreviewTransform();
+    private int mPreviewWidth;
+    private int mPreviewHeight;
+    private int mCameraOrientation;
+    private Point mDisplaySize = new Point();
+    private int mDisplayRotation;
+    private int mTransformRotation;
+    private DisplayManager.DisplayListener mDisplayListener;
+    private GestureDetector mGestureDetector;
+    private Handler mHandler = new Handler();
+
+    private int mCaptureState = CAPTURE_STATE_PREVIEW;
+    private String mFocusMode;
+    private String mCaptureMode;
+    private boolean mIsFocusMoving = false;
+    private boolean mIsFocusLocked = false;
+    private boolean mIsAutoFocusing = false;
+    private long mShutterPressedTime;
 
     @Bind(R.id.layout_background)
     RelativeLayout mLayoutBackground;
@@ -107,6 +149,8 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
 
         mTextureView.setSurfaceTextureListener(this);
         mProgressBar.setVisibility(View.GONE);
+        mMediaStorage = MediaStorage.getInstance();
+        mMediaStorage.setFsyncPolicy(FSYNC_POLICY);
 
         // Scale gesture detector is used to capture pinch to zoom
         mScaleGestureDetector = new ScaleGestureDetector(this, new ScaleGestureDetector.OnScaleGestureListener() {
@@ -136,13 +180,79 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
             }
         });
 
+        // Gesture detector is used to capture tap to focus
+        mGestureDetector = new GestureDetector(this, new GestureDetector.SimpleOnGestureListener() {
+
+            @Override
+            public boolean onDown(MotionEvent e) {
+                return true;
+            }
+
+            @Override
+            public boolean onSingleTapUp(MotionEvent e) {
+                preFocus(e.getX(), e.getY());
+                return true;
+            }
+        });
+
         mLayoutBackground.setOnTouchListener(new View.OnTouchListener() {
             @Override
             public boolean onTouch(View v, MotionEvent event) {
-                return mScaleGestureDetector.onTouchEvent(event);
+                mScaleGestureDetector.onTouchEvent(event);
+                if (event.getActionMasked() == MotionEvent.ACTION_POINTER_DOWN) {
+                    // A second finger means pinch to zoom, make sure the final ACTION_UP isn't seen as a tap
+                    MotionEvent cancel = MotionEvent.obtain(event);
+                    cancel.setAction(MotionEvent.ACTION_CANCEL);
+                    mGestureDetector.onTouchEvent(cancel);
+                    cancel.recycle();
+                } else {
+                    mGestureDetector.onTouchEvent(event);
+                }
+                return true;
             }
         });
 
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            registerDisplayListener();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mDisplayListener != null) {
+            ((DisplayManager) getSystemService(DISPLAY_SERVICE)).unregisterDisplayListener(mDisplayListener);
+        }
+        if (isChangingConfigurations()) {
+            startPreviewDowntimeMeasurement("Activity recreation");
+        }
+    }
+
+    /**
+     * A rotation straight from 90 to 270 degrees changes neither the configuration nor the surface size,
+     * so listen to the display to be able to flip the preview.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    private void registerDisplayListener() {
+        mDisplayListener = new DisplayManager.DisplayListener() {
+            @Override
+            public void onDisplayAdded(int displayId) {
+            }
+
+            @Override
+            public void onDisplayRemoved(int displayId) {
+            }
+
+            @Override
+            public void onDisplayChanged(int displayId) {
+                if (getWindowManager().getDefaultDisplay().getRotation() != mDisplayRotation) {
+                    Log.d(TAG, "onDisplayChanged: rotation changed");
+                    startPreviewDowntimeMeasurement("rotation without camera restart");
+                    updatePreviewTransform();
+                }
+            }
+        };
+        ((DisplayManager) getSystemService(DISPLAY_SERVICE)).registerDisplayListener(mDisplayListener, null);
     }
 
     @Override
@@ -156,7 +266,20 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
 
     @Override
     public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
-        // Ignored, Camera does all the work for us
+        Log.d(TAG, "onSurfaceTextureSizeChanged: " + width + "x" + height);
+        mSurfaceTextureWidth = width;
+        mSurfaceTextureHeight = height;
+        updatePreviewTransform();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        Log.d(TAG, "onConfigurationChanged: " + newConfig.orientation);
+        // The Activity handles rotation itself so the camera keeps streaming.
+        // The surface still has its old size here, the transform is updated in onSurfaceTextureSizeChanged.
+        startPreviewDowntimeMeasurement("rotation without camera restart");
+        updateDisplayOrientation();
     }
 
     @Override
@@ -170,6 +293,20 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
     @Override
     public void onSurfaceTextureUpdated(SurfaceTexture surface) {
         // Invoked every time there's a new Camera preview frame
+        if (sPreviewInterruptedTime != 0 && mTransformRotation == getWindowManager().getDefaultDisplay().getRotation()) {
+            Log.d(TAG, "Preview downtime after " + sPreviewInterruptedReason + ": " + (SystemClock.elapsedRealtime() - sPreviewInterruptedTime) + " ms");
+            sPreviewInterruptedTime = 0;
+        }
+    }
+
+    /**
+     * Start measuring until the first preview frame with the correct transform is shown.
+     */
+    private static void startPreviewDowntimeMeasurement(String reason) {
+        if (sPreviewInterruptedTime == 0) {
+            sPreviewInterruptedTime = SystemClock.elapsedRealtime();
+            sPreviewInterruptedReason = reason;
+        }
     }
 
     @OnClick(R.id.toggle_picture_or_video_button)
@@ -197,6 +334,7 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
         updateUI();
 
         // Restart camera
+        startPreviewDowntimeMeasurement("camera restart");
         releaseMediaRecorder();
         releaseCamera();
         new Handler().post(new Runnable() {
@@ -210,6 +348,16 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
     @OnClick(R.id.start_recording_button)
     public void startRecording() {
         Log.d(TAG, "startRecording");
+
+        // Check free space up front, MediaRecorder only fails once the card is already full
+        CamcorderProfile camcorderProfile = getCamcorderProfile();
+        long remainingSeconds = mMediaStorage.estimateRecordingSeconds(getMediaStorageDir(), VIDEO_ENCODING_BIT_RATE, camcorderProfile.audioBitRate);
+        Log.d(TAG, "startRecording - estimated remaining recording time: " + remainingSeconds + " s");
+        if (remainingSeconds < MIN_RECORDING_SECONDS) {
+            Toast.makeText(this, "Not enough storage to record video", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
         if (prepareVideoRecorder()) {
             mIsRecording = true;
             updateUI();
@@ -245,10 +393,214 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
     public void takePicture() {
         Log.d(TAG, "takePicture");
 
+        // Ignore taps while we are already taking a picture
+        if (mCamera == null || mCaptureState != CAPTURE_STATE_PREVIEW) {
+            return;
+        }
+
+        // Push back on capture while the storage is still busy writing previous pictures
+        if (mMediaStorage.isNearFull()) {
+            Log.w(TAG, "takePicture - storage queue is near full, " + mMediaStorage.getStatsSummary());
+            Toast.makeText(this, "Still saving, please wait", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        // Worst case estimate of the JPEG size is one byte per pixel
+        Camera.Size pictureSize = mCamera.getParameters().getPictureSize();
+        if (!mMediaStorage.hasFreeSpaceFor(getMediaStorageDir(), (long) pictureSize.width * pictureSize.height)) {
+            Toast.makeText(this, "Not enough storage to take picture", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
         mProgressBar.setVisibility(View.VISIBLE);
 
         mDeviceOrientation = getResources().getConfiguration().orientation;
-        mCamera.takePicture(null, null, new Camera.PictureCallback() {
+        mShutterPressedTime = SystemClock.elapsedRealtime();
+        mCaptureMode = mFocusMode + (mIsFocusLocked ? " (pre-focused)" : mIsFocusMoving ? " (scanning)" : "");
+        mCaptureState = CAPTURE_STATE_WAITING_FOCUS;
+
+        if (mIsFocusLocked) {
+            // Focus was locked by tap to focus, capture right away
+            capturePicture();
+        } else if (mIsAutoFocusing) {
+            // Tap to focus is already running, its callback captures
+        } else if (isAutoFocusSupported()) {
+            // In continuous mode autoFocus returns at once if focus has settled, otherwise when the scan is done
+            startAutoFocus();
+        } else {
+            // Fixed focus
+            capturePicture();
+        }
+
+        if (mCaptureState == CAPTURE_STATE_WAITING_FOCUS) {
+            mHandler.postDelayed(mFocusTimeoutRunnable, FOCUS_TIMEOUT_MS);
+        }
+    }
+
+    private final Runnable mFocusTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mCamera == null || mCaptureState != CAPTURE_STATE_WAITING_FOCUS) {
+                return;
+            }
+            Log.w(TAG, "Focus timed out after " + FOCUS_TIMEOUT_MS + " ms, taking picture anyway");
+            if (mIsAutoFocusing) {
+                mCamera.cancelAutoFocus();
+                mIsAutoFocusing = false;
+            }
+            capturePicture();
+        }
+    };
+
+    private final Runnable mFocusLockExpiredRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mCamera == null || mCaptureState != CAPTURE_STATE_PREVIEW || mIsAutoFocusing || !mIsFocusLocked) {
+                return;
+            }
+            Log.d(TAG, "Focus lock expired");
+            clearFocusLock();
+            setFocusArea(null);
+        }
+    };
+
+    /**
+     * Release a focus lock so continuous focus resumes.
+     */
+    private void clearFocusLock() {
+        mHandler.removeCallbacks(mFocusLockExpiredRunnable);
+        mIsFocusLocked = false;
+        if (mCamera != null && !mIsAutoFocusing) {
+            try {
+                mCamera.cancelAutoFocus();
+            } catch (Exception e) {
+                Log.w(TAG, "clearFocusLock failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private boolean isAutoFocusSupported() {
+        return Camera.Parameters.FOCUS_MODE_AUTO.equals(mFocusMode) || Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE.equals(mFocusMode);
+    }
+
+    /**
+     * Lock focus on the tapped point, so the next picture can be taken without waiting for focus.
+     */
+    private void preFocus(float x, float y) {
+        if (mCamera == null || mIsVideoMode || mIsRecording || mCaptureState != CAPTURE_STATE_PREVIEW || mIsAutoFocusing) {
+            return;
+        }
+        if (!isAutoFocusSupported()) {
+            return;
+        }
+        Log.d(TAG, "preFocus: " + x + ", " + y);
+        clearFocusLock();
+        setFocusArea(calculateFocusArea(x, y));
+        startAutoFocus();
+    }
+
+    /**
+     * Set the area the camera focuses on, or null to let the camera decide.
+     */
+    private void setFocusArea(Rect area) {
+        try {
+            Camera.Parameters parameters = mCamera.getParameters();
+            if (parameters.getMaxNumFocusAreas() <= 0) {
+                return;
+            }
+            List<Camera.Area> focusAreas = null;
+            if (area != null) {
+                focusAreas = new ArrayList<Camera.Area>();
+                focusAreas.add(new Camera.Area(area, 1000));
+            }
+            parameters.setFocusAreas(focusAreas);
+            mCamera.setParameters(parameters);
+        } catch (Exception e) {
+            Log.w(TAG, "setFocusArea failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Convert a point on the TextureView to a focus area in camera coordinates, -1000 to 1000 for the whole preview.
+     */
+    private Rect calculateFocusArea(float x, float y) {
+        int width = mTextureView.getWidth();
+        int height = mTextureView.getHeight();
+        boolean isFrontFacing = mCameraId == Camera.CameraInfo.CAMERA_FACING_FRONT;
+
+        // Camera coordinates to view coordinates, including the 'center crop' transform, then inverted
+        Matrix matrix = new Matrix();
+        matrix.setScale(isFrontFacing ? -1 : 1, 1);
+        matrix.postRotate(PreviewTransform.getDisplayOrientation(mDisplayRotation, mCameraOrientation, isFrontFacing));
+        matrix.postScale(width / 2000f, height / 2000f);
+        matrix.postTranslate(width / 2f, height / 2f);
+        matrix.postConcat(mTextureView.getTransform(null));
+        Matrix inverse = new Matrix();
+        matrix.invert(inverse);
+
+        RectF area = new RectF(x - FOCUS_AREA_SIZE / 2f, y - FOCUS_AREA_SIZE / 2f, x + FOCUS_AREA_SIZE / 2f, y + FOCUS_AREA_SIZE / 2f);
+        inverse.mapRect(area);
+        return new Rect(clampFocusCoordinate(area.left), clampFocusCoordinate(area.top),
+                clampFocusCoordinate(area.right), clampFocusCoordinate(area.bottom));
+    }
+
+    private int clampFocusCoordinate(float value) {
+        return Math.max(-1000, Math.min(1000, Math.round(value)));
+    }
+
+    private void startAutoFocus() {
+        mIsAutoFocusing = true;
+        try {
+            mCamera.autoFocus(new Camera.AutoFocusCallback() {
+                @Override
+                public void onAutoFocus(boolean success, Camera camera) {
+                    Log.d(TAG, "onAutoFocus: " + success);
+                    mIsAutoFocusing = false;
+                    mIsFocusLocked = success;
+                    if (mCaptureState == CAPTURE_STATE_WAITING_FOCUS) {
+                        capturePicture();
+                    } else if (success) {
+                        mHandler.postDelayed(mFocusLockExpiredRunnable, FOCUS_LOCK_EXPIRY_MS);
+                    } else {
+                        // autoFocus locks the lens even if it failed, release it so continuous focus resumes
+                        clearFocusLock();
+                    }
+                }
+            });
+        } catch (Exception e) {
+            Log.w(TAG, "startAutoFocus failed: " + e.getMessage());
+            mIsAutoFocusing = false;
+            if (mCaptureState == CAPTURE_STATE_WAITING_FOCUS) {
+                capturePicture();
+            }
+        }
+    }
+
+    private void capturePicture() {
+        if (mCamera == null || mCaptureState != CAPTURE_STATE_WAITING_FOCUS) {
+            return;
+        }
+        mCaptureState = CAPTURE_STATE_CAPTURING;
+        mHandler.removeCallbacks(mFocusTimeoutRunnable);
+        mHandler.removeCallbacks(mFocusLockExpiredRunnable);
+        Log.d(TAG, "capturePicture - waited " + (SystemClock.elapsedRealtime() - mShutterPressedTime) + " ms for focus");
+
+        try {
+            takePictureWithCamera();
+        } catch (Exception e) {
+            Log.e(TAG, "capturePicture failed: " + e.getMessage());
+            onCaptureFailed("Failed to take picture");
+        }
+    }
+
+    private void takePictureWithCamera() {
+        mCamera.takePicture(new Camera.ShutterCallback() {
+
+            @Override
+            public void onShutter() {
+                recordShutterLag(mCaptureMode, SystemClock.elapsedRealtime() - mShutterPressedTime);
+            }
+        }, null, new Camera.PictureCallback() {
 
             @Override
             public void onPictureTaken(byte[] data, Camera camera) {
@@ -259,32 +611,43 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
                 File pictureFile = getOutputMediaFile(MEDIA_TYPE_IMAGE);
                 if (pictureFile == null) {
                     Log.w(TAG, "Error creating media file, check storage permissions");
+                    onCaptureFailed("Failed to save picture");
                     return;
                 }
 
-                FileOutputStream fos = null;
-                try {
-                    fos = new FileOutputStream(pictureFile);
-                    fos.write(data);
-                    Log.d(TAG, "takePicture ---> " + pictureFile.getAbsolutePath());
-                } catch (FileNotFoundException e) {
-                    Log.d(TAG, "File not found: " + e.getMessage());
-                } catch (IOException e) {
-                    Log.d(TAG, "Error accessing file: " + e.getMessage());
-                } finally {
-                    try {
-                        fos.close();
-                    } catch (Exception e) {
-                        Log.w(TAG, "takePicture - Failed to close file");
-                    }
-                }
-
-                RotateBitmapTask task = new RotateBitmapTask(pictureFile, true, mIsCameraDirectionFront);
+                // Rotate in the background, the final JPEG is then written through the storage queue
+                RotateBitmapTask task = new RotateBitmapTask(data, pictureFile, true, mIsCameraDirectionFront);
                 task.execute();
 
             }
         });
+    }
+
+    /**
+     * Restart the preview after a failed capture so the user can try again.
+     */
+    private void onCaptureFailed(String message) {
+        mProgressBar.setVisibility(View.GONE);
+        Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+        mCaptureState = CAPTURE_STATE_PREVIEW;
+        clearFocusLock();
+        if (mCamera != null) {
+            try {
+                mCamera.startPreview();
+            } catch (Exception e) {
+                Log.w(TAG, "onCaptureFailed - Failed to restart preview: " + e.getMessage());
+            }
+        }
+    }
 
+    private static void recordShutterLag(String captureMode, long millis) {
+        LatencyHistogram histogram = sShutterLagHistograms.get(captureMode);
+        if (histogram == null) {
+            histogram = new LatencyHistogram(50, 100, 200, 400, 800, 1600);
+            sShutterLagHistograms.put(captureMode, histogram);
+        }
+        histogram.record(millis);
+        Log.d(TAG, "Shutter lag " + millis + " ms, " + captureMode + ": " + histogram);
     }
 
     /**
@@ -339,6 +702,9 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
         // Setup the camera
         try {
             mCamera = Camera.open(mCameraId);
+            Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
+            Camera.getCameraInfo(mCameraId, cameraInfo);
+            mCameraOrientation = cameraInfo.orientation;
         } catch (Exception e) {
             Log.e(TAG, "Unable to open camera " + mCameraId + ": " + e.getMessage());
         }
@@ -353,11 +719,18 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
         // Get camera parameters to modify
         Camera.Parameters parameters = mCamera.getParameters();
 
-        // Set auto focus if supported
+        // Prefer continuous focus since it is usually settled when the user presses the shutter, otherwise auto focus if supported
         List<String> focusModes = parameters.getSupportedFocusModes();
-        if (focusModes.contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
+        if (focusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
+            parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
+        } else if (focusModes.contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
             parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
         }
+        mFocusMode = parameters.getFocusMode();
+        mCaptureState = CAPTURE_STATE_PREVIEW;
+        mIsFocusMoving = false;
+        mIsFocusLocked = false;
+        mIsAutoFocusing = false;
 
         // Picture size
         Camera.Size size = getBiggestPictureSize();
@@ -368,43 +741,10 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
         int previewWidth = camcorderProfile.videoFrameWidth;
         int previewHeight = camcorderProfile.videoFrameHeight;
 
-        // Calculate how we need to scale the preview
-        // This is done so we can have a 'center crop' effect on the preview
-        float ratioSurface = mSurfaceTextureWidth > mSurfaceTextureHeight ? (float) mSurfaceTextureWidth / mSurfaceTextureHeight : (float) mSurfaceTextureHeight / mSurfaceTextureWidth;
-        float ratioPreview = (float) previewWidth / previewHeight;
-        int scaledHeight;
-        int scaledWidth;
-        float scaleX = 1f;
-        float scaleY = 1f;
-        boolean isPortrait = false;
-        Display display = getWindowManager().getDefaultDisplay();
+        mPreviewWidth = previewWidth;
+        mPreviewHeight = previewHeight;
         if (previewWidth > 0 && previewHeight > 0) {
             parameters.setPreviewSize(previewWidth, previewHeight);
-
-            if (display.getRotation() == Surface.ROTATION_0 || display.getRotation() == Surface.ROTATION_180) {
-                mCamera.setDisplayOrientation(display.getRotation() == Surface.ROTATION_0 ? 90 : 270);
-                isPortrait = true;
-            } else if (display.getRotation() == Surface.ROTATION_90 || display.getRotation() == Surface.ROTATION_270) {
-                mCamera.setDisplayOrientation(display.getRotation() == Surface.ROTATION_90 ? 0 : 180);
-                isPortrait = false;
-            }
-            if (isPortrait && ratioPreview > ratioSurface) {
-                scaledHeight = (int) (((float) previewWidth / previewHeight) * mSurfaceTextureWidth);
-                scaleX = 1f;
-                scaleY = (float) scaledHeight / mSurfaceTextureHeight;
-            } else if (isPortrait && ratioPreview < ratioSurface) {
-                scaledWidth = (int) (mSurfaceTextureHeight / ((float) previewWidth / previewHeight));
-                scaleX = (float) scaledWidth / mSurfaceTextureWidth;
-                scaleY = 1f;
-            } else if (!isPortrait && ratioPreview < ratioSurface) {
-                scaledHeight = (int) (mSurfaceTextureWidth / ((float) previewWidth / previewHeight));
-                scaleX = 1f;
-                scaleY = (float) scaledHeight / mSurfaceTextureHeight;
-            } else if (!isPortrait && ratioPreview > ratioSurface) {
-                scaledWidth = (int) (((float) previewWidth / previewHeight) * mSurfaceTextureWidth);
-                scaleX = (float) scaledWidth / mSurfaceTextureWidth;
-                scaleY = 1f;
-            }
         }
 
         if (parameters.isZoomSupported()) {
@@ -420,10 +760,21 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
         // Set modified camera parameters
         mCamera.setParameters(parameters);
 
-        // Create transformation matrix
-        Matrix matrix = new Matrix();
-        matrix.setScale(scaleX, scaleY);
-        mTextureView.setTransform(matrix);
+        // Track when continuous focus is scanning
+        if (Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE.equals(mFocusMode)) {
+            mCamera.setAutoFocusMoveCallback(new Camera.AutoFocusMoveCallback() {
+                @Override
+                public void onAutoFocusMoving(boolean start, Camera camera) {
+                    // Only tracked to tell shots taken while scanning apart, autoFocus does the waiting
+                    mIsFocusMoving = start;
+                }
+            });
+        }
+
+        // Set display orientation and transformation matrix
+        mDisplayRotation = -1;
+        mTransformRotation = -1;
+        updatePreviewTransform();
         try {
             mCamera.setPreviewTexture(mSurfaceTexture);
             mCamera.startPreview();
@@ -435,6 +786,49 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
         updateUI();
     }
 
+    /**
+     * Reapply display orientation and 'center crop' transform without restarting the camera.
+     */
+    private void updatePreviewTransform() {
+        int rotation = updateDisplayOrientation();
+        if (rotation < 0) {
+            return;
+        }
+
+        // Right after a rotation the surface may still have its old size, wait for onSurfaceTextureSizeChanged
+        getWindowManager().getDefaultDisplay().getSize(mDisplaySize);
+        if (PreviewTransform.isPortrait(mSurfaceTextureWidth, mSurfaceTextureHeight) != PreviewTransform.isPortrait(mDisplaySize.x, mDisplaySize.y)) {
+            Log.d(TAG, "updatePreviewTransform - waiting for surface size to match rotation");
+            return;
+        }
+
+        mTextureView.setTransform(mPreviewTransform.getMatrix(mSurfaceTextureWidth, mSurfaceTextureHeight, mPreviewWidth, mPreviewHeight));
+        mTransformRotation = rotation;
+    }
+
+    /**
+     * Update the camera display orientation if the display has rotated.
+     *
+     * @return current display rotation, or -1 if there is no camera.
+     */
+    private int updateDisplayOrientation() {
+        if (mCamera == null) {
+            return -1;
+        }
+
+        int rotation = getWindowManager().getDefaultDisplay().getRotation();
+        if (rotation != mDisplayRotation) {
+            try {
+                mCamera.setDisplayOrientation(PreviewTransform.getDisplayOrientation(rotation, mCameraOrientation, mCameraId == Camera.CameraInfo.CAMERA_FACING_FRONT));
+                mDisplayRotation = rotation;
+            } catch (Exception e) {
+                // Not allowed while recording, the recorded video is unaffected
+                Log.w(TAG, "updateDisplayOrientation - Failed to set display orientation: " + e.getMessage());
+            }
+        }
+        return rotation;
+    }
+
     private CamcorderProfile getCamcorderProfile() {
         CamcorderProfile camcorderProfile;
         if (CamcorderProfile.hasProfile(mCameraId, CamcorderProfile.QUALITY_1080P)) {
@@ -520,6 +914,18 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
         mMediaRecorder.setOutputFile(mediaFile.toString());
         mVideoUri = Uri.fromFile(mediaFile);
 
+        // Stop gracefully instead of running out of storage
+        mMediaRecorder.setMaxFileSize(mMediaStorage.getAvailableBytes(getMediaStorageDir()));
+        mMediaRecorder.setOnInfoListener(new MediaRecorder.OnInfoListener() {
+            @Override
+            public void onInfo(MediaRecorder mr, int what, int extra) {
+                if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
+                    Log.w(TAG, "Max file size reached, stopping recording");
+                    stopRecording();
+                }
+            }
+        });
+
         // Prepare configured MediaRecorder
         try {
             mMediaRecorder.prepare();
@@ -547,6 +953,9 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
     }
 
     private void releaseCamera() {
+        mHandler.removeCallbacks(mFocusTimeoutRunnable);
+        mHandler.removeCallbacks(mFocusLockExpiredRunnable);
+        mCaptureState = CAPTURE_STATE_PREVIEW;
         if (mCamera != null) {
             mCamera.release(); // release the camera for other applications
             mCamera = null;
@@ -582,14 +991,21 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
         return maxSize;
     }
 
+    /**
+     * Directory where images and videos are saved
+     */
+    private File getMediaStorageDir() {
+        // This location works best if you want the created images to be shared between applications and persist after your app has been uninstalled.
+        return new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES), "SimpleTextureCamera");
+    }
+
     /**
      * Create a File for saving an image or video
      */
     private File getOutputMediaFile(int type) {
         // To be safe, you should check that the SDCard is mounted using Environment.getExternalStorageState() before doing this.
 
-        File mediaStorageDir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES), "SimpleTextureCamera");
-        // This location works best if you want the created images to be shared between applications and persist after your app has been uninstalled.
+        File mediaStorageDir = getMediaStorageDir();
 
         // Create the storage directory if it does not exist
         if (!mediaStorageDir.exists() && !mediaStorageDir.mkdirs()) {
@@ -615,12 +1031,14 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
      * Process our bitmap to get correct rotation.
      */
     private final class RotateBitmapTask extends AsyncTask {
-        File tempFile;
+        byte[] data;
+        File file;
         boolean fromCamera;
         boolean frontFacing;
 
-        private RotateBitmapTask(File tempFile, Boolean fromCamera, Boolean frontFacing) {
-            this.tempFile = tempFile;
+        private RotateBitmapTask(byte[] data, File file, Boolean fromCamera, Boolean frontFacing) {
+            this.data = data;
+            this.file = file;
             this.fromCamera = fromCamera;
             this.frontFacing = frontFacing;
         }
@@ -630,7 +1048,7 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
 
             Log.d(TAG, "RotateBitmapTask: doInBackground");
             try {
-                Bitmap originalImage = BitmapFactory.decodeFile(tempFile.getAbsolutePath());
+                Bitmap originalImage = BitmapFactory.decodeByteArray(data, 0, data.length);
                 if (fromCamera) {
 
                     if (mCameraId == 0 && mDeviceOrientation == Configuration.ORIENTATION_LANDSCAPE) {
@@ -645,7 +1063,7 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
 
                 }
 
-                writeBitmapToFile(originalImage, tempFile);
+                return compressBitmap(originalImage);
             } catch (Exception e) {
                 Log.e(TAG, "RotateBitmapTask failed:  " + e.getMessage());
             }
@@ -656,34 +1074,33 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
         @Override
         protected void onPostExecute(Object o) {
             super.onPostExecute(o);
-            handleCapturedPictureOrRecordedVideo(Uri.fromFile(tempFile), false);
-        }
-    }
+            if (o == null) {
+                onCaptureFailed("Failed to save picture");
+                return;
+            }
 
-    private void writeBitmapToFile(Bitmap bitmap, File file) {
-        if (file == null) {
-            return;
-        }
+            // Write behind so a slow SD card doesn't block the UI thread
+            mMediaStorage.write(file, (byte[]) o, new MediaStorage.WriteCallback() {
+                @Override
+                public void onWriteComplete(File file, boolean success) {
+                    if (!success) {
+                        onCaptureFailed("Failed to save picture");
+                        return;
+                    }
 
-        FileOutputStream out = null;
-        try {
-            out = new FileOutputStream(file);
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, out);
-            out.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "writeBitmapToFile - IOException: " + e.getMessage());
+                    Log.d(TAG, "takePicture ---> " + file.getAbsolutePath());
+                    handleCapturedPictureOrRecordedVideo(Uri.fromFile(file), false);
                 }
-            }
-
+            });
         }
     }
 
+    private byte[] compressBitmap(Bitmap bitmap) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 100, out);
+        return out.toByteArray();
+    }
+
     private Bitmap rotateBitmap(Bitmap bitmap, int rotationDegree) {
         Log.d(TAG, "rotateBitmap: " + rotationDegree);
         Matrix matrix = new Matrix();
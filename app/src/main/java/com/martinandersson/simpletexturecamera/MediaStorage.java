@@ -0,0 +1,280 @@
+package com.martinandersson.simpletexturecamera;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Write-behind storage for captured media.
+ * <p/>
+ * Writes are queued and drained by a single I/O thread so a slow SD card never stalls the UI thread.
+ * The queue is bounded by the number of pending bytes and writes that don't fit are rejected, callers should
+ * check {@link #isNearFull()} before capturing so the camera is pushed back instead of losing the data.
+ */
+public class MediaStorage {
+    public static final String TAG = MediaStorage.class.getSimpleName();
+
+    public static final int FSYNC_NEVER = 1;
+    public static final int FSYNC_ON_CLOSE = 2;
+
+    public static final int DEFAULT_MAX_PENDING_BYTES = 24 * 1024 * 1024; // Room for a few full size JPEGs
+    public static final long MIN_FREE_BYTES = 10 * 1024 * 1024; // Never fill the card completely
+    public static final int WRITE_CHUNK_SIZE = 64 * 1024;
+
+    private static MediaStorage sInstance;
+
+    private final Object mLock = new Object();
+    private final ArrayDeque<WriteJob> mPendingJobs = new ArrayDeque<WriteJob>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final int mMaxPendingBytes;
+    private int mFsyncPolicy;
+    private long mPendingBytes;
+
+    // Statistics, guarded by mLock
+    private long mTotalBytesWritten;
+    private long mTotalWriteNanos;
+
+    // Time spent in each write, synchronizes itself
+    private final LatencyHistogram mStallHistogram = new LatencyHistogram(1, 4, 16, 64, 256);
+
+    /**
+     * Called on the main thread when a queued write has finished.
+     */
+    public interface WriteCallback {
+        void onWriteComplete(File file, boolean success);
+    }
+
+    private static final class WriteJob {
+        final File file;
+        final byte[] data;
+        final WriteCallback callback;
+
+        WriteJob(File file, byte[] data, WriteCallback callback) {
+            this.file = file;
+            this.data = data;
+            this.callback = callback;
+        }
+    }
+
+    public static synchronized MediaStorage getInstance() {
+        if (sInstance == null) {
+            sInstance = new MediaStorage(DEFAULT_MAX_PENDING_BYTES, FSYNC_ON_CLOSE);
+        }
+        return sInstance;
+    }
+
+    public MediaStorage(int maxPendingBytes, int fsyncPolicy) {
+        mMaxPendingBytes = maxPendingBytes;
+        mFsyncPolicy = fsyncPolicy;
+
+        Thread ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainQueue();
+            }
+        }, TAG);
+        ioThread.setPriority(Thread.NORM_PRIORITY - 1);
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    public void setFsyncPolicy(int fsyncPolicy) {
+        synchronized (mLock) {
+            mFsyncPolicy = fsyncPolicy;
+        }
+    }
+
+    /**
+     * Queue data to be written to file. The data is not copied so the caller must not modify it afterwards.
+     * A write into an empty queue is always accepted, even if it is bigger than the queue, since the data is already in memory.
+     *
+     * @return false if the queue is full, the callback is then called with a failure.
+     */
+    public boolean write(File file, byte[] data, WriteCallback callback) {
+        WriteJob job = new WriteJob(file, data, callback);
+        synchronized (mLock) {
+            if (!canQueue(mPendingJobs.isEmpty(), mPendingBytes, data.length, mMaxPendingBytes)) {
+                Log.w(TAG, "write rejected: " + data.length + " bytes, pending " + mPendingBytes + " bytes");
+                postResult(job, false);
+                return false;
+            }
+            mPendingJobs.addLast(job);
+            mPendingBytes += data.length;
+            Log.d(TAG, "write queued: " + data.length + " bytes, pending " + mPendingBytes + " bytes");
+            mLock.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the queue is above its high watermark and no new captures should be started.
+     */
+    public boolean isNearFull() {
+        synchronized (mLock) {
+            return isAboveHighWatermark(mPendingBytes, mMaxPendingBytes);
+        }
+    }
+
+    /**
+     * Bytes available in the given directory, minus what is already queued for writing.
+     */
+    public long getAvailableBytes(File dir) {
+        // The directory might not be created yet, use the closest existing parent
+        while (dir != null && !dir.exists()) {
+            dir = dir.getParentFile();
+        }
+        if (dir == null) {
+            return 0;
+        }
+
+        long usable = dir.getUsableSpace();
+        synchronized (mLock) {
+            return computeAvailableBytes(usable, mPendingBytes);
+        }
+    }
+
+    public boolean hasFreeSpaceFor(File dir, long bytes) {
+        return getAvailableBytes(dir) >= bytes;
+    }
+
+    /**
+     * Estimate how many seconds we can record into the given directory.
+     *
+     * @param videoBitRate video encoding bit rate in bits per second.
+     * @param audioBitRate audio encoding bit rate in bits per second.
+     * @return estimated recording time in seconds.
+     */
+    public long estimateRecordingSeconds(File dir, int videoBitRate, int audioBitRate) {
+        return computeRecordingSeconds(getAvailableBytes(dir), videoBitRate, audioBitRate);
+    }
+
+    /**
+     * A write is accepted if it fits in the queue, or if the queue is empty so a single big write can't be starved.
+     */
+    static boolean canQueue(boolean isQueueEmpty, long pendingBytes, int length, long maxPendingBytes) {
+        return isQueueEmpty || pendingBytes + length <= maxPendingBytes;
+    }
+
+    /**
+     * The high watermark is at three quarters of the queue.
+     */
+    static boolean isAboveHighWatermark(long pendingBytes, long maxPendingBytes) {
+        return pendingBytes >= maxPendingBytes * 3 / 4;
+    }
+
+    /**
+     * @return usable bytes minus what is queued and {@link #MIN_FREE_BYTES}, never negative.
+     */
+    static long computeAvailableBytes(long usableBytes, long pendingBytes) {
+        return Math.max(0, usableBytes - pendingBytes - MIN_FREE_BYTES);
+    }
+
+    /**
+     * @return how many seconds of video fit in the available bytes at the given bit rates.
+     */
+    static long computeRecordingSeconds(long availableBytes, int videoBitRate, int audioBitRate) {
+        long bitRate = (long) videoBitRate + audioBitRate;
+        if (bitRate <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return availableBytes * 8 / bitRate;
+    }
+
+    /**
+     * @return a one line summary of write throughput and the stall histogram.
+     */
+    public String getStatsSummary() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (mLock) {
+            long kbPerSecond = mTotalWriteNanos > 0 ? mTotalBytesWritten / 1024 * 1000000000L / mTotalWriteNanos : 0;
+            sb.append("wrote ").append(mTotalBytesWritten).append(" bytes in ").append(mTotalWriteNanos / 1000000).append(" ms (")
+                    .append(kbPerSecond).append(" KB/s), stalls: ").append(mStallHistogram);
+        }
+        return sb.toString();
+    }
+
+    private void drainQueue() {
+        while (true) {
+            WriteJob job;
+            int fsyncPolicy;
+            synchronized (mLock) {
+                while (mPendingJobs.isEmpty()) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        Log.w(TAG, "drainQueue interrupted");
+                        return;
+                    }
+                }
+                job = mPendingJobs.peekFirst();
+                fsyncPolicy = mFsyncPolicy;
+            }
+
+            boolean success = writeToFile(job, fsyncPolicy);
+
+            synchronized (mLock) {
+                mPendingJobs.removeFirst();
+                mPendingBytes -= job.data.length;
+            }
+            Log.d(TAG, "write done ---> " + job.file.getAbsolutePath() + ", " + getStatsSummary());
+            postResult(job, success);
+        }
+    }
+
+    private void postResult(final WriteJob job, final boolean success) {
+        if (job.callback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                job.callback.onWriteComplete(job.file, success);
+            }
+        });
+    }
+
+    private boolean writeToFile(WriteJob job, int fsyncPolicy) {
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(job.file);
+            int offset = 0;
+            while (offset < job.data.length) {
+                int length = Math.min(WRITE_CHUNK_SIZE, job.data.length - offset);
+                long start = System.nanoTime();
+                fos.write(job.data, offset, length);
+                recordWrite(length, System.nanoTime() - start);
+                offset += length;
+            }
+            if (fsyncPolicy == FSYNC_ON_CLOSE) {
+                long start = System.nanoTime();
+                fos.getFD().sync();
+                recordWrite(0, System.nanoTime() - start);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "writeToFile failed: " + e.getMessage());
+            return false;
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "writeToFile - Failed to close file");
+                }
+            }
+        }
+    }
+
+    private void recordWrite(int bytes, long nanos) {
+        synchronized (mLock) {
+            mTotalBytesWritten += bytes;
+            mTotalWriteNanos += nanos;
+        }
+        mStallHistogram.record(nanos / 1000000);
+    }
+}
@@ -0,0 +1,135 @@
+package com.martinandersson.simpletexturecamera;
+
+import android.graphics.Matrix;
+import android.view.Surface;
+
+/**
+ * Calculates the transform used to get a 'center crop' effect on the camera preview.
+ * <p/>
+ * The scale only depends on surface size and preview size. One scale is kept for a portrait and one for a
+ * landscape surface, so rotating back and forth is just a lookup.
+ */
+public class PreviewTransform {
+
+    private final Entry[] mEntries = new Entry[2];
+    private final Matrix mMatrix = new Matrix();
+    private int mPreviewWidth;
+    private int mPreviewHeight;
+
+    private static final class Entry {
+        final int surfaceWidth;
+        final int surfaceHeight;
+        final float[] scale;
+
+        Entry(int surfaceWidth, int surfaceHeight, float[] scale) {
+            this.surfaceWidth = surfaceWidth;
+            this.surfaceHeight = surfaceHeight;
+            this.scale = scale;
+        }
+    }
+
+    /**
+     * @return transformation matrix to apply on the TextureView, only valid until the next call.
+     */
+    public Matrix getMatrix(int surfaceWidth, int surfaceHeight, int previewWidth, int previewHeight) {
+        float[] scale = getScale(surfaceWidth, surfaceHeight, previewWidth, previewHeight);
+        mMatrix.setScale(scale[0], scale[1]);
+        return mMatrix;
+    }
+
+    /**
+     * Look up the scale for the surface orientation, it is only calculated if the sizes changed.
+     *
+     * @return {scaleX, scaleY}
+     */
+    float[] getScale(int surfaceWidth, int surfaceHeight, int previewWidth, int previewHeight) {
+        if (previewWidth != mPreviewWidth || previewHeight != mPreviewHeight) {
+            mPreviewWidth = previewWidth;
+            mPreviewHeight = previewHeight;
+            mEntries[0] = null;
+            mEntries[1] = null;
+        }
+
+        int index = isPortrait(surfaceWidth, surfaceHeight) ? 1 : 0;
+        Entry entry = mEntries[index];
+        if (entry == null || entry.surfaceWidth != surfaceWidth || entry.surfaceHeight != surfaceHeight) {
+            entry = new Entry(surfaceWidth, surfaceHeight, computeScale(surfaceWidth, surfaceHeight, previewWidth, previewHeight));
+            mEntries[index] = entry;
+        }
+        return entry.scale;
+    }
+
+    /**
+     * Calculate how we need to scale the preview. The camera image is rotated to fill a portrait surface.
+     *
+     * @return {scaleX, scaleY}
+     */
+    public static float[] computeScale(int surfaceWidth, int surfaceHeight, int previewWidth, int previewHeight) {
+        float scaleX = 1f;
+        float scaleY = 1f;
+        if (previewWidth <= 0 || previewHeight <= 0 || surfaceWidth <= 0 || surfaceHeight <= 0) {
+            return new float[]{scaleX, scaleY};
+        }
+
+        float ratioSurface = surfaceWidth > surfaceHeight ? (float) surfaceWidth / surfaceHeight : (float) surfaceHeight / surfaceWidth;
+        float ratioPreview = (float) previewWidth / previewHeight;
+        int scaledHeight;
+        int scaledWidth;
+        boolean isPortrait = isPortrait(surfaceWidth, surfaceHeight);
+
+        if (isPortrait && ratioPreview > ratioSurface) {
+            scaledHeight = (int) (((float) previewWidth / previewHeight) * surfaceWidth);
+            scaleX = 1f;
+            scaleY = (float) scaledHeight / surfaceHeight;
+        } else if (isPortrait && ratioPreview < ratioSurface) {
+            scaledWidth = (int) (surfaceHeight / ((float) previewWidth / previewHeight));
+            scaleX = (float) scaledWidth / surfaceWidth;
+            scaleY = 1f;
+        } else if (!isPortrait && ratioPreview < ratioSurface) {
+            scaledHeight = (int) (surfaceWidth / ((float) previewWidth / previewHeight));
+            scaleX = 1f;
+            scaleY = (float) scaledHeight / surfaceHeight;
+        } else if (!isPortrait && ratioPreview > ratioSurface) {
+            scaledWidth = (int) (((float) previewWidth / previewHeight) * surfaceHeight);
+            scaleX = (float) scaledWidth / surfaceWidth;
+            scaleY = 1f;
+        }
+        return new float[]{scaleX, scaleY};
+    }
+
+    /**
+     * Calculate the camera display orientation, this also works on devices where the natural orientation is landscape.
+     *
+     * @param rotation          display rotation, one of the Surface.ROTATION_* constants.
+     * @param cameraOrientation orientation of the camera image from Camera.CameraInfo.
+     * @param isFrontFacing     true if the camera is front facing, the preview is then mirrored.
+     * @return the camera display orientation in degrees.
+     */
+    public static int getDisplayOrientation(int rotation, int cameraOrientation, boolean isFrontFacing) {
+        int degrees;
+        switch (rotation) {
+            case Surface.ROTATION_90:
+                degrees = 90;
+                break;
+            case Surface.ROTATION_180:
+                degrees = 180;
+                break;
+            case Surface.ROTATION_270:
+                degrees = 270;
+                break;
+            default:
+                degrees = 0;
+                break;
+        }
+
+        if (isFrontFacing) {
+            // Compensate for the mirror
+            return (360 - (cameraOrientation + degrees) % 360) % 360;
+        }
+        return (cameraOrientation - degrees + 360) % 360;
+    }
+
+    public static boolean isPortrait(int width, int height) {
+        return height > width;
+    }
+}
@@ -0,0 +1,51 @@
+package com.martinandersson.simpletexturecamera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MediaStorageTest {
+    private static final long MAX_PENDING_BYTES = 1000;
+
+    @Test
+    public void emptyQueueAcceptsOversizedWrite() {
+        assertTrue(MediaStorage.canQueue(true, 0, 5000, MAX_PENDING_BYTES));
+    }
+
+    @Test
+    public void writeThatFitsIsAccepted() {
+        assertTrue(MediaStorage.canQueue(false, 600, 400, MAX_PENDING_BYTES));
+    }
+
+    @Test
+    public void writeOverLimitIsRejected() {
+        assertFalse(MediaStorage.canQueue(false, 600, 401, MAX_PENDING_BYTES));
+    }
+
+    @Test
+    public void highWatermarkIsThreeQuarters() {
+        assertFalse(MediaStorage.isAboveHighWatermark(749, MAX_PENDING_BYTES));
+        assertTrue(MediaStorage.isAboveHighWatermark(750, MAX_PENDING_BYTES));
+    }
+
+    @Test
+    public void availableBytesKeepsReserveAndPendingWrites() {
+        long usable = MediaStorage.MIN_FREE_BYTES + 5000;
+        assertEquals(3000, MediaStorage.computeAvailableBytes(usable, 2000));
+        assertEquals(0, MediaStorage.computeAvailableBytes(MediaStorage.MIN_FREE_BYTES / 2, 0));
+    }
+
+    @Test
+    public void recordingSecondsFromBitRates() {
+        // 4 Mbps video and 96 kbps audio is 512000 bytes per second
+        assertEquals(60, MediaStorage.computeRecordingSeconds(512000L * 60, 4000000, 96000));
+        assertEquals(0, MediaStorage.computeRecordingSeconds(0, 4000000, 96000));
+    }
+
+    @Test
+    public void recordingSecondsWithoutBitRateIsUnlimited() {
+        assertEquals(Long.MAX_VALUE, MediaStorage.computeRecordingSeconds(1000, 0, 0));
+    }
+}
@@ -0,0 +1,109 @@
+package com.martinandersson.simpletexturecamera;
+
+import android.view.Surface;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class PreviewTransformTest {
+    private static final float DELTA = 0.001f;
+
+    @Test
+    public void portraitWiderPreviewScalesHeight() {
+        // 16:9 preview on a 4:3 portrait surface
+        float[] scale = PreviewTransform.computeScale(1080, 1440, 1920, 1080);
+        assertEquals(1f, scale[0], DELTA);
+        assertEquals(1920f / 1440, scale[1], DELTA);
+    }
+
+    @Test
+    public void portraitNarrowerPreviewScalesWidth() {
+        // 4:3 preview on a 16:9 portrait surface
+        float[] scale = PreviewTransform.computeScale(1080, 1920, 1440, 1080);
+        assertEquals(1440f / 1080, scale[0], DELTA);
+        assertEquals(1f, scale[1], DELTA);
+    }
+
+    @Test
+    public void landscapeNarrowerPreviewScalesHeight() {
+        // 4:3 preview on a 16:9 landscape surface
+        float[] scale = PreviewTransform.computeScale(1920, 1080, 1440, 1080);
+        assertEquals(1f, scale[0], DELTA);
+        assertEquals(1440f / 1080, scale[1], DELTA);
+    }
+
+    @Test
+    public void landscapeWiderPreviewScalesWidth() {
+        // 16:9 preview on a 4:3 landscape surface
+        float[] scale = PreviewTransform.computeScale(1440, 1080, 1920, 1080);
+        assertEquals(1920f / 1440, scale[0], DELTA);
+        assertEquals(1f, scale[1], DELTA);
+    }
+
+    @Test
+    public void sameAspectRatioIsNotScaled() {
+        float[] scale = PreviewTransform.computeScale(1080, 1920, 1920, 1080);
+        assertEquals(1f, scale[0], DELTA);
+        assertEquals(1f, scale[1], DELTA);
+    }
+
+    @Test
+    public void zeroSizeIsNotScaled() {
+        float[] scale = PreviewTransform.computeScale(0, 0, 1920, 1080);
+        assertEquals(1f, scale[0], DELTA);
+        assertEquals(1f, scale[1], DELTA);
+
+        scale = PreviewTransform.computeScale(1080, 1920, 0, 0);
+        assertEquals(1f, scale[0], DELTA);
+        assertEquals(1f, scale[1], DELTA);
+    }
+
+    @Test
+    public void scaleIsCachedPerSurfaceOrientation() {
+        PreviewTransform transform = new PreviewTransform();
+        float[] portrait = transform.getScale(1080, 1776, 1920, 1080);
+        float[] landscape = transform.getScale(1794, 1080, 1920, 1080);
+
+        // Rotating back and forth is a lookup, even though the surface size is not just swapped
+        assertSame(portrait, transform.getScale(1080, 1776, 1920, 1080));
+        assertSame(landscape, transform.getScale(1794, 1080, 1920, 1080));
+    }
+
+    @Test
+    public void scaleIsRecalculatedWhenSizesChange() {
+        PreviewTransform transform = new PreviewTransform();
+        float[] scale = transform.getScale(1080, 1776, 1920, 1080);
+
+        float[] resized = transform.getScale(1080, 1920, 1920, 1080);
+        assertNotSame(scale, resized);
+        assertEquals(1f, resized[1], DELTA);
+
+        float[] newPreview = transform.getScale(1080, 1920, 1440, 1080);
+        assertNotSame(resized, newPreview);
+        assertEquals(1440f / 1080, newPreview[0], DELTA);
+    }
+
+    @Test
+    public void displayOrientationForBackCamera() {
+        // Typical phone, camera mounted landscape
+        assertEquals(90, PreviewTransform.getDisplayOrientation(Surface.ROTATION_0, 90, false));
+        assertEquals(0, PreviewTransform.getDisplayOrientation(Surface.ROTATION_90, 90, false));
+        assertEquals(270, PreviewTransform.getDisplayOrientation(Surface.ROTATION_180, 90, false));
+        assertEquals(180, PreviewTransform.getDisplayOrientation(Surface.ROTATION_270, 90, false));
+
+        // Tablet with landscape natural orientation
+        assertEquals(0, PreviewTransform.getDisplayOrientation(Surface.ROTATION_0, 0, false));
+        assertEquals(270, PreviewTransform.getDisplayOrientation(Surface.ROTATION_90, 0, false));
+    }
+
+    @Test
+    public void displayOrientationForFrontCamera() {
+        assertEquals(90, PreviewTransform.getDisplayOrientation(Surface.ROTATION_0, 270, true));
+        assertEquals(0, PreviewTransform.getDisplayOrientation(Surface.ROTATION_90, 270, true));
+        assertEquals(270, PreviewTransform.getDisplayOrientation(Surface.ROTATION_180, 270, true));
+        assertEquals(180, PreviewTransform.getDisplayOrientation(Surface.ROTATION_270, 270, true));
+    }
+}